@@ -1,6 +1,10 @@
 //Author: Sam Watson
 
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
@@ -10,7 +14,14 @@ import java.util.Random;
  * See included readme for a detailed explanation of how this works.
  */
 public class CosineLSH {
-	private HashSet<HashTable> tables; //A set of LSH HashTables, which map tweet hash codes to buckets of (probably) similar tweets
+	private final HashSet<HashTable> tables; //A set of LSH HashTables, which map tweet hash codes to buckets of (probably) similar tweets. Never changes after construction.
+	public static final long QUERY_ID = -1; //ID reported for query text that is not itself a tweet in the tables
+	private static Comparator<NearestNeighbor> closestFirstComparator = new Comparator<NearestNeighbor>(){ //Orders neighbors from closest to farthest
+		@Override
+		public int compare(NearestNeighbor neighbor1, NearestNeighbor neighbor2) {
+			return Double.compare(neighbor1.getDistance(), neighbor2.getDistance());
+		}
+	};
 	
 	/* numTables = total number of tables to use 
 	 * numHyperplanes = number of hyperplanes to use in each table 
@@ -42,4 +53,25 @@ public class CosineLSH {
 		}
 		return actualNearestNeighbor;
 	}
+	
+	//Finds up to maxNeighbors tweets closest to the given words across all the tables, closest first, without adding anything.
+	//Safe to call from many threads while a single thread is calling addTweet.
+	public List<NearestNeighbor> findNearestNeighbors(HashSet<Integer> words, int maxNeighbors){
+		if(words.isEmpty()){ //Nothing to compare against
+			return new ArrayList<NearestNeighbor>();
+		}
+		//The same tweet usually turns up in several tables, so keep one entry per neighbor
+		HashMap<Long, NearestNeighbor> candidates = new HashMap<Long, NearestNeighbor>();
+		for(HashTable table : tables){
+			for(NearestNeighbor candidate : table.queryNeighbors(QUERY_ID, words)){
+				candidates.put(candidate.getNeighborID(), candidate);
+			}
+		}
+		List<NearestNeighbor> nearestNeighbors = new ArrayList<NearestNeighbor>(candidates.values());
+		Collections.sort(nearestNeighbors, closestFirstComparator);
+		if(nearestNeighbors.size() > maxNeighbors){
+			return new ArrayList<NearestNeighbor>(nearestNeighbors.subList(0, maxNeighbors));
+		}
+		return nearestNeighbors;
+	}
 }
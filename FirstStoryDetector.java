@@ -4,12 +4,15 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import twitter4j.TwitterException;
 
@@ -18,12 +21,19 @@ import twitter4j.TwitterException;
 //uses cosine distance and locality sensitive hashing. Inspired by the approach described by Petrovic, Osborne, and Lavrenko
 //in their paper Streaming First Story Detection with Application to Twitter (2010)
 //See readme for more details
+//
+//detect()/processTweet() must run on a single thread, but findThread(), findNearestNeighbors() and findFastestGrowingThreadIDs()
+//may be called from any number of other threads while it runs. Queries never modify the index and never block ingestion.
 public class FirstStoryDetector {
-	private HashMap<Long, TweetThread> parentsToThreads; //Map parent IDs (ie first tweet in thread) to TweetThread objects
-	private HashMap<Long, Long> tweetsToParents; //Map tweet IDs to the parent ID of the thread they belong to 
-	private CosineLSH lsh;
+	private final ConcurrentHashMap<Long, TweetThread> parentsToThreads; //Map parent IDs (ie first tweet in thread) to TweetThread objects
+	private final ConcurrentHashMap<Long, Long> tweetsToParents; //Map tweet IDs to the parent ID of the thread they belong to 
+	private final CosineLSH lsh;
 	private static TweetFinder finder = new TweetFinder();; //Queries Twitter for actual tweet content given a tweet ID
 	private double noveltyThreshold = 0.75; //Threshold for considering a tweet significantly different that it discusses a "new" topic. 0.75 was the best value found via experimentation.
+	private long shortWindow = 10 * 60 * 1000L; //Time constant (ms) of the decaying arrival counter that tracks how fast a thread is growing right now
+	private long longWindow = 60 * 60 * 1000L; //Time constant (ms) of the slower counter that tracks a thread's recent baseline growth
+	private double accelerationWeight = 1.0; //How much a thread's acceleration counts towards its growth score, relative to its velocity
+	private volatile long latestTimestamp = 0L; //Creation time (ms since epoch) of the newest tweet processed so far
 	private static Comparator<TweetThread> bigToSmallThreadComparator = new Comparator<TweetThread>(){ //Orders threads from largest to smallest
 		@Override
 		public int compare(TweetThread thread1, TweetThread thread2) {
@@ -42,8 +52,8 @@ public class FirstStoryDetector {
 	};
 	
 	public FirstStoryDetector(int numTables, int numHyperplanes, int maxTweetsPerBucket, List<Integer> allWords){
-		parentsToThreads = new HashMap<Long, TweetThread>();
-		tweetsToParents = new HashMap<Long, Long>();
+		parentsToThreads = new ConcurrentHashMap<Long, TweetThread>();
+		tweetsToParents = new ConcurrentHashMap<Long, Long>();
 		lsh = new CosineLSH(numTables, numHyperplanes, maxTweetsPerBucket, allWords);
 	}
 	
@@ -55,41 +65,76 @@ public class FirstStoryDetector {
 		private int size;
 		private int totalNumWords; //Number of unique words in thread (useful for calculating entropy)
 		private HashMap<Integer, Integer> wordCounts; //Map word IDs to the total number of times they appear in the thread (also useful for entropy)
+		private double wordCountLogSum; //Sum of count * ln(count) over wordCounts, so entropy can be calculated without walking the map
+		//Exponentially decayed arrival counts as of lastArrival. Each arrival adds 1, and counts shrink by e every shortWindow/longWindow ms.
+		//A thread receiving r tweets/ms settles at a count of r * window, so count / window is its recent arrival rate.
+		private double shortTermCount;
+		private double longTermCount;
+		private long lastArrival; //Timestamp (ms) of the newest tweet in the thread
+		private volatile ThreadSnapshot snapshot; //Latest consistent copy of the above for reader threads. Replaced after every change.
 		
-		private TweetThread(Long parentID){
+		private TweetThread(Long parentID, long timestamp){
 			this.parentID = parentID;
 			tweetsInThread = new HashSet<Long>();
 			size = 1;
 			totalNumWords = 0;
 			wordCounts = new HashMap<Integer, Integer>();
+			wordCountLogSum = 0.0;
+			shortTermCount = 1.0;
+			longTermCount = 1.0;
+			lastArrival = timestamp;
+			snapshot = new ThreadSnapshot(this);
 		}
 		
 		//Adds a tweet to the thread
-		private void addTweet(Long tweetID, HashSet<Integer> words){
+		private void addTweet(Long tweetID, HashSet<Integer> words, long timestamp){
 			tweetsInThread.add(tweetID);
 			size++;
+			//Decay the counters up to this tweet and count it. Tweets slightly out of order are counted without decaying.
+			shortTermCount = decayedCount(shortTermCount, shortWindow, timestamp) + 1;
+			longTermCount = decayedCount(longTermCount, longWindow, timestamp) + 1;
+			lastArrival = Math.max(lastArrival, timestamp);
 			totalNumWords += words.size();
 			//Update word counts
 			for(Integer word : words){
 				if(wordCounts.containsKey(word)){
-					wordCounts.put(word, wordCounts.get(word) + 1);
+					int wordCount = wordCounts.get(word);
+					wordCountLogSum += (wordCount + 1) * Math.log(wordCount + 1) - wordCount * Math.log(wordCount);
+					wordCounts.put(word, wordCount + 1);
 				}
 				else{
-					wordCounts.put(word, 1);
+					wordCounts.put(word, 1); //1 * ln(1) == 0, so wordCountLogSum is unchanged
 				}
 			}
+			snapshot = new ThreadSnapshot(this);
 		}
 		
 		//Calculates entropy of a thread.
 		//Entropy is a measure of the variance of words in a thread.
 		//If all the tweets in a thread are very similar/identical, it has low entropy and is probably full of spam
+		//-sum((c/total) * ln(c/total)) over word counts c simplifies to ln(total) - sum(c * ln(c))/total
 		public double calculateEntropy(){
-			double entropy = 0.0;
-			for(Integer wordCount : wordCounts.values()){
-				double fractionOfTotalWords = (double)wordCount/totalNumWords;
-				entropy += fractionOfTotalWords * Math.log(fractionOfTotalWords);
+			if(totalNumWords == 0){
+				return 0.0;
 			}
-			return 0 - entropy;
+			return Math.log(totalNumWords) - wordCountLogSum / totalNumWords;
+		}
+		
+		//Returns what a counter with the given time constant would read at time now, given it was last updated at lastArrival
+		private double decayedCount(double count, long window, long now){
+			return decay(count, window, lastArrival, now);
+		}
+		
+		public double getVelocity(long now){
+			return snapshot.getVelocity(now);
+		}
+		
+		public double getAcceleration(long now){
+			return snapshot.getAcceleration(now);
+		}
+		
+		public ThreadSnapshot getSnapshot(){
+			return snapshot;
 		}
 
 		public long getParentID() {
@@ -105,6 +150,49 @@ public class FirstStoryDetector {
 		}
 	}
 	
+	//Returns what a decaying counter with the given time constant, last updated at lastUpdate, would read at time now
+	private static double decay(double count, long window, long lastUpdate, long now){
+		long elapsed = Math.max(0L, now - lastUpdate);
+		return count * Math.exp(-(double)elapsed / window);
+	}
+	
+	//Immutable copy of a thread's size, entropy and growth counters, taken by the detection thread after each change.
+	//Lets other threads rank threads while detection runs without seeing half-updated values.
+	private class ThreadSnapshot{
+		private final long parentID;
+		private final int size;
+		private final double entropy;
+		private final double shortTermCount;
+		private final double longTermCount;
+		private final long lastArrival;
+		
+		private ThreadSnapshot(TweetThread thread){
+			parentID = thread.parentID;
+			size = thread.size;
+			entropy = thread.calculateEntropy();
+			shortTermCount = thread.shortTermCount;
+			longTermCount = thread.longTermCount;
+			lastArrival = thread.lastArrival;
+		}
+		
+		//Returns how fast the thread is growing at time now, in tweets per minute over roughly the last shortWindow
+		public double getVelocity(long now){
+			return decay(shortTermCount, shortWindow, lastArrival, now) / shortWindow * 60000;
+		}
+		
+		//Returns how much faster the thread is growing now than over roughly the last longWindow, in tweets per minute.
+		//Positive means the thread is speeding up, negative means it is cooling off.
+		public double getAcceleration(long now){
+			double baseline = decay(longTermCount, longWindow, lastArrival, now) / longWindow * 60000;
+			return getVelocity(now) - baseline;
+		}
+		
+		//Returns the score threads are ranked by for growth: velocity plus weighted acceleration
+		public double getGrowthScore(long now){
+			return getVelocity(now) + accelerationWeight * getAcceleration(now);
+		}
+	}
+	
 	//Detects hot topics and tweets that started them in a given file of encoded tweets
 	public void detect(String fileName, int numTweets){
 		System.out.println("Reading data from " + fileName+ "...");
@@ -131,21 +219,7 @@ public class FirstStoryDetector {
 				for(String idString : wordIDStrings){
 					wordIDs.add(Integer.parseInt(idString));
 				}
-				NearestNeighbor nearestNeighbor = lsh.addTweet(ID, wordIDs);
-				
-				//Determine if tweet belongs in an existing thread or if it is novel enough to deserve a new one
-				TweetThread thread;
-				if(nearestNeighbor.getDistance() > noveltyThreshold){
-					thread = new TweetThread(ID);
-				}
-				else{
-					Long threadID = tweetsToParents.get(nearestNeighbor.getNeighborID());
-					thread = parentsToThreads.get(threadID);
-					thread.addTweet(ID, wordIDs);
-				}
-				//Update thread tables
-				parentsToThreads.put(thread.getParentID(), thread);
-				tweetsToParents.put(ID, thread.getParentID());
+				processTweet(ID, wordIDs);
 				count++;
 			}
 			reader.close();
@@ -158,12 +232,103 @@ public class FirstStoryDetector {
 		}
 	}
 	
-	//Returns the top fastest growing threads in the dataset
+	//Adds a single encoded tweet to the index and assigns it to a thread.
+	//Returns the parent ID of the thread it joined (its own ID if it started a new one)
+	//Must only be called from the thread running detection. wordIDs must not be modified afterwards.
+	public long processTweet(Long ID, HashSet<Integer> wordIDs){
+		long timestamp = TweetEncoder.getTimestamp(ID);
+		NearestNeighbor nearestNeighbor = lsh.addTweet(ID, wordIDs);
+		
+		//Determine if tweet belongs in an existing thread or if it is novel enough to deserve a new one
+		TweetThread thread;
+		if(nearestNeighbor.getDistance() > noveltyThreshold){
+			thread = new TweetThread(ID, timestamp);
+		}
+		else{
+			Long threadID = tweetsToParents.get(nearestNeighbor.getNeighborID());
+			thread = parentsToThreads.get(threadID);
+			thread.addTweet(ID, wordIDs, timestamp);
+		}
+		//Update thread tables
+		parentsToThreads.put(thread.getParentID(), thread);
+		tweetsToParents.put(ID, thread.getParentID());
+		latestTimestamp = Math.max(latestTimestamp, timestamp);
+		return thread.getParentID();
+	}
+	
+	//Returns up to maxNeighbors tweets in the index closest to the given (encoded) words, closest first. Does not add anything.
+	public List<NearestNeighbor> findNearestNeighbors(HashSet<Integer> words, int maxNeighbors){
+		return lsh.findNearestNeighbors(words, maxNeighbors);
+	}
+	
+	//Returns the parent ID of the live thread the given (encoded) words would join, or null if they are novel enough to start a new thread.
+	//Does not add anything.
+	public Long findThread(HashSet<Integer> words){
+		for(NearestNeighbor neighbor : lsh.findNearestNeighbors(words, 10)){
+			if(neighbor.getDistance() > noveltyThreshold){
+				return null;
+			}
+			Long parentID = tweetsToParents.get(neighbor.getNeighborID());
+			if(parentID != null){ //Null if the neighbor was hashed but detect() has not assigned it a thread yet
+				return parentID;
+			}
+		}
+		return null;
+	}
+	
+	//Returns the creation time (ms since epoch) of the newest tweet processed so far, ie the detector's notion of "now"
+	public long getLatestTimestamp(){
+		return latestTimestamp;
+	}
+	
+	//Returns the parent IDs of the threads growing fastest right now, fastest first
+	public List<Long> findFastestGrowingThreadIDs(int capacity){
+		List<Long> parentIDs = new ArrayList<Long>();
+		PriorityQueue<ThreadSnapshot> fastestThreads = findFastestGrowingThreads(capacity, parentsToThreads.values(), latestTimestamp);
+		while(! fastestThreads.isEmpty()){
+			parentIDs.add(fastestThreads.poll().parentID);
+		}
+		return parentIDs;
+	}
+	
+	//(try to) identify spam and tiny threads
+	private static boolean isSpamOrTiny(ThreadSnapshot thread){
+		return thread.size < 35 || thread.entropy < 2.7;
+	}
+	
+	//Returns snapshots of the threads with the highest growth score (velocity plus weighted acceleration) at time now
+	//Only reads thread snapshots, so it is safe to call while detection runs
+	private PriorityQueue<ThreadSnapshot> findFastestGrowingThreads(int capacity, Collection<TweetThread> threads, final long now){
+		Comparator<ThreadSnapshot> slowToFastThreadComparator = new Comparator<ThreadSnapshot>(){ //Orders threads from slowest to fastest growing
+			@Override
+			public int compare(ThreadSnapshot thread1, ThreadSnapshot thread2) {
+				return Double.compare(thread1.getGrowthScore(now), thread2.getGrowthScore(now));
+			}
+		};
+		PriorityQueue<ThreadSnapshot> topThreads = new PriorityQueue<ThreadSnapshot>(capacity + 2, slowToFastThreadComparator); //If we sort threads slow->fast first, it's easy to dump the slow ones
+		
+		for(TweetThread thread : threads){
+			ThreadSnapshot snapshot = thread.getSnapshot();
+			if(isSpamOrTiny(snapshot)){
+				continue;
+			}
+			topThreads.add(snapshot);
+			if(topThreads.size() > capacity){
+				topThreads.poll();
+			}
+		}
+		//Now sort threads fast->slow
+		PriorityQueue<ThreadSnapshot> topThreadsFastToSlow = new PriorityQueue<ThreadSnapshot>(capacity + 2, Collections.reverseOrder(slowToFastThreadComparator));
+		topThreadsFastToSlow.addAll(topThreads);
+		return topThreadsFastToSlow;
+	}
+	
+	//Returns the largest threads in the dataset
 	private PriorityQueue<TweetThread> findTopThreads(int capacity, Collection<TweetThread> threads){
 		PriorityQueue<TweetThread> topThreads = new PriorityQueue<TweetThread>(capacity + 2, smallToBigThreadComparator); //If we sort threads small->large first, it's easy to dump the small ones
 		
 		for(TweetThread thread : threads){
-			if(thread.calculateEntropy() < 2.7 || thread.getSize() < 35){ //(try to) ignore spam and tiny threads
+			if(isSpamOrTiny(thread.getSnapshot())){
 				continue;
 			}
 			topThreads.add(thread);
@@ -179,7 +344,8 @@ public class FirstStoryDetector {
 	
 	//Prints out data related to a given thread
 	//numSubtweets = number of tweet IDs in that thread to display
-	private static void printThread(TweetThread thread, int numSubtweets){
+	//now = time (ms since epoch) at which to report the thread's growth
+	private static void printThread(TweetThread thread, int numSubtweets, long now){
 		System.out.println("Parent ID: " + thread.getParentID());
 		try {
 			System.out.println("Parent tweet content: " + finder.lookupStatusContent(thread.getParentID()));
@@ -188,6 +354,8 @@ public class FirstStoryDetector {
 		}
 		System.out.println("Size of thread: " + thread.getSize());
 		System.out.println("Entropy: " + thread.calculateEntropy());
+		System.out.println("Velocity (tweets/min): " + thread.getVelocity(now));
+		System.out.println("Acceleration (tweets/min): " + thread.getAcceleration(now));
 		System.out.println(numSubtweets +" tweets from this thread: ");
 		int subcount = 0;
 		for(Long subtweet : thread.getTweetsInThread()){
@@ -202,6 +370,7 @@ public class FirstStoryDetector {
 	public static void main(String[] args){
 		PriorityQueue<TweetThread> globalTopThreads = new PriorityQueue<TweetThread>(50, smallToBigThreadComparator); //Index of overall fastest growing threads from every set analyzed
 		FirstStoryDetector fsd;
+		long latestTimestamp = 0L; //Newest tweet seen across all sets
 		for(int i=25;i<=25;i++){ //Read raw data file 25 as an example. This is half a million tweets.
 			//Initialize new encoder for each raw data file, which split each file into 5 smaller encoded files
 			TweetEncoder encoder = new TweetEncoder();;
@@ -231,7 +400,7 @@ public class FirstStoryDetector {
 					}
 					
 					TweetThread thread = topThreads.poll();
-					printThread(thread, 5);
+					printThread(thread, 5, fsd.getLatestTimestamp());
 					//Add thread to global top threads. If it's in the top 50 so far, it'll stick.
 					globalTopThreads.add(thread);
 					if(globalTopThreads.size() > 50){
@@ -240,6 +409,16 @@ public class FirstStoryDetector {
 					System.out.println("**************");
 				}
 				
+				//Show which threads were growing fastest when the set ended (ie breaking right now)
+				System.out.println("Fastest growing threads at end of set:");
+				PriorityQueue<ThreadSnapshot> fastestThreads = fsd.findFastestGrowingThreads(5, fsd.parentsToThreads.values(), fsd.getLatestTimestamp());
+				while(! fastestThreads.isEmpty()){
+					ThreadSnapshot thread = fastestThreads.poll();
+					System.out.println("Parent ID: " + thread.parentID + ", velocity (tweets/min): " + thread.getVelocity(fsd.getLatestTimestamp()) 
+							+ ", acceleration (tweets/min): " + thread.getAcceleration(fsd.getLatestTimestamp()));
+				}
+				latestTimestamp = Math.max(latestTimestamp, fsd.getLatestTimestamp());
+				
 			System.out.println("######### Done with this set ###########");
 			}
 		}
@@ -249,7 +428,7 @@ public class FirstStoryDetector {
 		System.out.println("\n\n");
 		System.out.println("**Top Overall fastest growing threads: **");
 		for(TweetThread thread : globalTopThreadsBigToSmall){
-			printThread(thread, 10);
+			printThread(thread, 10, latestTimestamp);
 		}
 	System.out.println("Done");
 	}	
@@ -1,12 +1,11 @@
 //Author: Sam Watson
 
+import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /*
@@ -14,16 +13,21 @@ import java.util.Random;
  * Works by dividing the space of all possible words tweets can contain with random hyperplanes
  * and seeing which tweets fall into the same subspaces created by these hyperplanes. These tweets are likely nearest neighbors.
  * For a more detailed description, see included readme.
+ *
+ * Supports a single writer (addTweet) running alongside any number of readers (findNearestNeighbor, queryNeighbors, getBuckets).
+ * Buckets are never modified in place: the writer builds a new bucket array and publishes it to the concurrent map,
+ * so readers always see a complete bucket without taking any locks and never block the writer.
+ * The price is paid by the writer, which copies the bucket (up to maxTweetsPerBucket entries) on every add whether or not anyone is reading.
  */
 public class HashTable {
-	private HashMap<BitSet, Queue<TinyTweet>> table; //Map hashcodes to buckets of (probably) similar tweets
-	private int maxTweetsPerBucket; //Max number of tweets a bucket can contain. Reduces number of distance calculations, but might lose a tweet's true nearest neighbor.
-	private double[][] hyperplanes; //Hyperplanes to intersect space with
-	private Random rando;
+	private final ConcurrentHashMap<BitSet, TinyTweet[]> table; //Map hashcodes to buckets of (probably) similar tweets, oldest first. Bucket arrays are never modified once published.
+	private final int maxTweetsPerBucket; //Max number of tweets a bucket can contain. Reduces number of distance calculations, but might lose a tweet's true nearest neighbor.
+	private final double[][] hyperplanes; //Hyperplanes to intersect space with
+	private final Random rando;
 	
 	public HashTable(int numHyperplanes, int maxTweetsPerBucket, List<Integer> allWords, int seed){
 		this.maxTweetsPerBucket = maxTweetsPerBucket;
-		table = new HashMap<BitSet, Queue<TinyTweet>>();
+		table = new ConcurrentHashMap<BitSet, TinyTweet[]>();
 		rando = new Random(seed);
 
 		//Initialize random hyperplanes
@@ -39,9 +43,10 @@ public class HashTable {
 	
 	//Small class for holding barebones data about tweets.
 	//Includes tweet ID and a set of the (integer encoded) words it contains.
-	private class TinyTweet{
-		private long ID; //ID of tweet
-		private HashSet<Integer> words; //Words in tweets.
+	//Immutable so it can be shared with reader threads.
+	private static class TinyTweet{
+		private final long ID; //ID of tweet
+		private final HashSet<Integer> words; //Words in tweets. Must not be modified after the tweet is added.
 		
 		private TinyTweet(long ID, HashSet<Integer> words){
 			this.ID = ID;
@@ -109,20 +114,20 @@ public class HashTable {
 
 	//Calculates a given tweet's hashcode and adds it to the table.
 	//Returns the hashcode of the tweet as a BitSet
+	//Only one thread may call this at a time.
 	public BitSet addTweet(long ID, HashSet<Integer> words){
 		BitSet tweetHashCode = generateHashCode(words);
 		
-		//Add to table
-		Queue<TinyTweet> bucket = table.get(tweetHashCode);
+		//Copy the bucket with the new tweet appended, then publish the copy so readers never see a half-updated bucket
+		TinyTweet[] bucket = table.get(tweetHashCode);
 		if(bucket == null){
-			bucket = new LinkedList<TinyTweet>();
+			bucket = new TinyTweet[0];
 		}
-		TinyTweet tweet = new TinyTweet(ID, words);
-		bucket.add(tweet);
-		if(bucket.size() > maxTweetsPerBucket){
-			bucket.remove(); //Remove oldest tweet to make room for new one
-		}
-		table.put(tweetHashCode, bucket);
+		int numKept = Math.max(0, Math.min(bucket.length, maxTweetsPerBucket - 1)); //Drop oldest tweets to make room for new one
+		TinyTweet[] newBucket = new TinyTweet[numKept + 1];
+		System.arraycopy(bucket, bucket.length - numKept, newBucket, 0, numKept);
+		newBucket[numKept] = new TinyTweet(ID, words);
+		table.put(tweetHashCode, newBucket);
 
 		return tweetHashCode;
 	}
@@ -162,7 +167,7 @@ public class HashTable {
 	//Returns the NearestNeighbor of a given tweet and it's corresponding hashCode
 	//NearestNeighbor objects know the tweet's ID, its nearest neighbor's ID, and their cosine distance
 	public NearestNeighbor findNearestNeighbor(Long tweetID, HashSet<Integer> words, BitSet hashCode){
-		Queue<TinyTweet> neighbors = table.get(hashCode);
+		TinyTweet[] neighbors = table.get(hashCode);
 		if(neighbors == null){
 			throw new IllegalArgumentException("The given hash code " + hashCode + " does not exist!");
 		}
@@ -184,22 +189,38 @@ public class HashTable {
 		return new NearestNeighbor(tweetID, nearestNeighborID, minDistance);
 	}
 
+	//Read-only lookup: hashes the given words and returns a NearestNeighbor for every tweet in the matching bucket, without adding anything to the table.
+	//queryID is reported as the ID of each result. Returns an empty list if no tweets share the bucket.
+	//Safe to call from any number of threads while another thread is adding tweets.
+	public List<NearestNeighbor> queryNeighbors(long queryID, HashSet<Integer> words){
+		List<NearestNeighbor> results = new ArrayList<NearestNeighbor>();
+		TinyTweet[] neighbors = table.get(generateHashCode(words));
+		if(neighbors == null){
+			return results;
+		}
+		for(TinyTweet neighbor : neighbors){
+			results.add(new NearestNeighbor(queryID, neighbor.ID, findCosineDistance(words, neighbor.words)));
+		}
+		return results;
+	}
+
 	//Returns the angle between two points (ie tweets) represented as sets of coordinate indices where point has nonzero value (ie word IDs)
 	//Since tweets have binary coordinate values, we can trivially calculate distance from origin as sqrt(size of set)
 	private double findCosineDistance(HashSet<Integer> point1, HashSet<Integer> point2){
 		double cosAngle = pointDotProduct(point1, point2) / (Math.sqrt(point1.size()) * Math.sqrt(point2.size()));
+		//Rounding can push identical tweets just past 1 (eg 3 shared words / (sqrt(3) * sqrt(3))), which acos turns into NaN.
+		//Clamping means exact duplicates are found as nearest neighbors during detection too, so they join the existing thread instead of starting a new one.
+		cosAngle = Math.max(-1.0, Math.min(1.0, cosAngle));
 		return Math.acos(cosAngle);	//angle
 	}
 
 	//Returns all the buckets in the table
 	public HashSet<HashSet<Long>> getBuckets(){
 		HashSet<HashSet<Long>> buckets = new HashSet<HashSet<Long>>();
-		for(Queue<TinyTweet> bucket : table.values()){
+		for(TinyTweet[] bucket : table.values()){
 			HashSet<Long> idBucket = new HashSet<Long>();
-			Object[] tweets = bucket.toArray();
-			for(Object tweet : tweets){
-				TinyTweet castTweet = (TinyTweet) tweet;
-				idBucket.add(castTweet.ID);
+			for(TinyTweet tweet : bucket){
+				idBucket.add(tweet.ID);
 			}
 			buckets.add(idBucket);
 		}
@@ -0,0 +1,136 @@
+import java.util.concurrent.TimeUnit;
+
+
+/* Records latencies in a fixed amount of memory and reports percentiles, in the style of HdrHistogram.
+ * Values below 128 are counted exactly. Larger values share a bucket with values within about 1.6% of them,
+ * so percentiles stay accurate from microseconds up to hours without storing every sample.
+ * Not thread-safe; record from a single thread.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 7; //Each power of two is split into 2^(SUB_BUCKET_BITS-1) = 64 buckets
+	private static final int HALF_SUB_BUCKET_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+	private long[] counts; //Number of values recorded in each bucket
+	private long totalCount;
+	private long maxValue;
+	private double sum; //Sum of all values, for the mean
+
+	public LatencyHistogram(){
+		counts = new long[(64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKET_COUNT];
+		totalCount = 0;
+		maxValue = 0;
+		sum = 0.0;
+	}
+
+	//Records a single (non-negative) value. Negative values are recorded as zero.
+	public void recordValue(long value){
+		value = Math.max(0L, value);
+		counts[bucketIndex(value)]++;
+		totalCount++;
+		maxValue = Math.max(maxValue, value);
+		sum += value;
+	}
+
+	//Returns which bucket a value falls in.
+	//Values below 2^SUB_BUCKET_BITS map to themselves. Larger values keep their top SUB_BUCKET_BITS bits,
+	//and each extra bit of magnitude moves them up by HALF_SUB_BUCKET_COUNT buckets.
+	private int bucketIndex(long value){
+		int highestBit = 63 - Long.numberOfLeadingZeros(value);
+		int shift = Math.max(0, highestBit - (SUB_BUCKET_BITS - 1));
+		int subBucket = (int)(value >> shift);
+		return shift * HALF_SUB_BUCKET_COUNT + subBucket;
+	}
+
+	//Returns the largest value that falls in the bucket at a given index
+	private long highestValueInBucket(int index){
+		if(index < 2 * HALF_SUB_BUCKET_COUNT){
+			return index;
+		}
+		int shift = index / HALF_SUB_BUCKET_COUNT - 1;
+		long subBucket = index % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	//Returns the value that the given percentage (0-100) of recorded values are less than or equal to
+	public long getValueAtPercentile(double percentile){
+		if(totalCount == 0){
+			return 0;
+		}
+		long countAtPercentile = Math.max(1L, (long)Math.ceil(percentile / 100.0 * totalCount));
+		long runningCount = 0;
+		for(int i=0;i<counts.length;i++){
+			runningCount += counts[i];
+			if(runningCount >= countAtPercentile){
+				return Math.min(highestValueInBucket(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public long getMaxValue() {
+		return maxValue;
+	}
+
+	public double getMean() {
+		return totalCount == 0 ? 0.0 : sum / totalCount;
+	}
+
+	//Prints the usual percentiles, treating recorded values as being in the given unit and reporting them in milliseconds
+	public void printPercentiles(TimeUnit unit){
+		double unitsPerMilli = unit.convert(1, TimeUnit.MILLISECONDS);
+		System.out.println("Latency (ms): mean " + format(getMean() / unitsPerMilli)
+				+ ", p50 " + format(getValueAtPercentile(50) / unitsPerMilli)
+				+ ", p90 " + format(getValueAtPercentile(90) / unitsPerMilli)
+				+ ", p99 " + format(getValueAtPercentile(99) / unitsPerMilli)
+				+ ", p99.9 " + format(getValueAtPercentile(99.9) / unitsPerMilli)
+				+ ", max " + format(getMaxValue() / unitsPerMilli));
+	}
+
+	private static String format(double value){
+		return String.format("%.3f", value);
+	}
+
+	//Throws if a reported value is outside [low, high]
+	private static void check(String name, long value, long low, long high){
+		if(value < low || value > high){
+			throw new IllegalStateException(name + " was " + value + ", expected between " + low + " and " + high);
+		}
+	}
+
+	//Self-check: records known values and makes sure the reported percentiles are within the promised precision
+	public static void main(String[] args){
+		//Values below 128 are exact
+		LatencyHistogram small = new LatencyHistogram();
+		for(long i=1;i<=100;i++){
+			small.recordValue(i);
+		}
+		check("small p50", small.getValueAtPercentile(50), 50, 50);
+		check("small p99", small.getValueAtPercentile(99), 99, 99);
+		check("small p100", small.getValueAtPercentile(100), 100, 100);
+
+		//Larger values are reported as the top of their bucket, at most 1/64 above the true value
+		LatencyHistogram large = new LatencyHistogram();
+		for(long i=1;i<=1000000;i++){
+			large.recordValue(i);
+		}
+		check("large p50", large.getValueAtPercentile(50), 500000, 500000 + 500000 / 64);
+		check("large p99", large.getValueAtPercentile(99), 990000, 990000 + 990000 / 64);
+		check("large p99.9", large.getValueAtPercentile(99.9), 999000, 1000000);
+		check("large max", large.getMaxValue(), 1000000, 1000000);
+		check("large count", large.getTotalCount(), 1000000, 1000000);
+
+		//Huge values don't overflow the buckets and the maximum is kept exactly
+		LatencyHistogram huge = new LatencyHistogram();
+		huge.recordValue(0);
+		huge.recordValue(Long.MAX_VALUE);
+		check("huge p50", huge.getValueAtPercentile(50), 0, 0);
+		check("huge p100", huge.getValueAtPercentile(100), Long.MAX_VALUE, Long.MAX_VALUE);
+
+		//Empty histograms report zero
+		check("empty p99", new LatencyHistogram().getValueAtPercentile(99), 0, 0);
+		System.out.println("LatencyHistogram self-check passed");
+	}
+}
@@ -0,0 +1,430 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/* Replays an archived tweet file into a FirstStoryDetector at a controlled rate and measures how long each tweet
+ * waits between arriving and being assigned to a thread. Useful for sizing hardware for traffic spikes.
+ *
+ * A feeder thread hands tweets to the detector through a bounded queue on a fixed schedule, either at a steady rate
+ * or following the gaps between the tweets' own timestamps. Latency is measured from when a tweet was scheduled to arrive,
+ * not when the feeder got around to sending it, so a detector that falls behind is charged for the whole backlog.
+ *
+ * Usage: java ReplayDriver <cleanTweets_*.txt or encoded file> [options]
+ *   --rate <tweets/sec>            replay at a steady rate (default 1000)
+ *   --recorded [speedup]           replay with the recorded gaps between tweets, optionally sped up
+ *   --burst <multiplier> <start> <duration>  multiply the arrival rate during [start, start+duration) seconds of the replay
+ *   --tweets <count>               only load the first count tweets of the file (preloaded and timed)
+ *   --preload <count>              tweets to add to each replay's detector, untimed, before the clock starts (default 20000)
+ *   --trial-seconds <seconds>      stop each replay after this many seconds of scheduled arrivals (default 30 with --find-max, else no limit)
+ *   --queue <capacity>             size of the queue between feeder and detector (default 10000)
+ *   --latency-limit <ms>           p99 latency a rate must stay under to count as sustainable (default 100)
+ *   --find-max                     search for the highest sustainable --rate instead of running once (not with --recorded)
+ *
+ * Before any timed replay, some tweets are run through a throwaway detector so the JIT has compiled the hot paths.
+ * Each replay then fills a fresh detector with the first --preload tweets of the file, untimed, and only times the tweets after them.
+ * Per-tweet cost grows as LSH buckets fill towards their size limit, so timing an empty detector would overstate capacity.
+ * The larger the preload, the closer the index is to the occupancy of a detector that has been running for a while.
+ */
+public class ReplayDriver {
+	//Detector settings, same as FirstStoryDetector.main
+	private static final int NUM_TABLES = 25;
+	private static final int NUM_HYPERPLANES = 200;
+	private static final int MAX_TWEETS_PER_BUCKET = 70;
+	private static final int BISECTION_STEPS = 5; //Number of times to narrow the gap between the last sustainable and first unsustainable rate
+	private static final int WARM_UP_TWEETS = 20000; //Tweets to process untimed before the first replay
+	private static final int DEFAULT_PRELOAD_TWEETS = 20000; //Default number of tweets to fill each replay's detector with before timing
+	private static final double FIND_MAX_TRIAL_SECONDS = 30.0; //Default length of each --find-max replay
+
+	private long[] tweetIDs; //IDs of tweets to replay, in file order
+	private List<HashSet<Integer>> tweetWords; //Encoded words of each tweet to replay
+	private List<Integer> allWords; //Every word in the replayed tweets, including duplicates, for generating hyperplanes
+	private int queueCapacity = 10000;
+	private double latencyLimitMillis = 100.0;
+	private double trialSeconds = 0.0; //Only replay tweets scheduled within this many seconds of the start. 0 means no limit.
+	private int preloadTweets = DEFAULT_PRELOAD_TWEETS; //Tweets at the start of the file added to each replay's detector untimed. Timed tweets follow them.
+
+	//Small class for the outcome of one replay
+	private static class TrialResult{
+		private double offeredRate; //Tweets/sec the feeder tried to deliver
+		private double achievedRate; //Tweets/sec the detector actually got through
+		private int maxBacklog; //Most tweets waiting in the queue at once
+		private LatencyHistogram latencies; //Scheduled arrival to thread assignment, in microseconds
+		private boolean sustainable;
+	}
+
+	//Small class for a tweet handed from the feeder to the detector
+	private static class Arrival{
+		private final int index; //Position of the tweet in tweetIDs/tweetWords (after the preloaded ones), or -1 to signal the end of the replay
+		private final long scheduledNanos; //When the tweet was due to arrive, per System.nanoTime()
+
+		private Arrival(int index, long scheduledNanos){
+			this.index = index;
+			this.scheduledNanos = scheduledNanos;
+		}
+	}
+
+	//Loads up to maxTweets tweets from a raw cleanTweets file (encoding it first) or from an already encoded file
+	public ReplayDriver(String fileName, int maxTweets){
+		if(new File(fileName).getName().startsWith("cleanTweets")){
+			//Encode into a temporary directory that is removed on exit, keeping everything in one encoded file
+			try {
+				File encodeDirectory = Files.createTempDirectory("replayTweets").toFile();
+				encodeDirectory.deleteOnExit();
+				File encodedFile = new File(encodeDirectory, "replayTweets_1.txt");
+				encodedFile.deleteOnExit(); //Registered after the directory, so it is deleted first
+				TweetEncoder encoder = new TweetEncoder();
+				encoder.encode(fileName, new File(encodeDirectory, "replayTweets").getPath(), Integer.MAX_VALUE);
+				load(encodedFile.getPath(), maxTweets);
+			} catch (IOException e) {
+				System.out.println("Could not create a temporary file to encode into.");
+				e.printStackTrace();
+				tweetIDs = new long[0]; //Nothing to replay
+				tweetWords = new ArrayList<HashSet<Integer>>();
+				allWords = new LinkedList<Integer>();
+			}
+		}
+		else{
+			load(fileName, maxTweets);
+		}
+	}
+
+	//Reads encoded tweets into memory so that disk access doesn't count towards latency
+	private void load(String fileName, int maxTweets){
+		System.out.println("Loading tweets from " + fileName + "...");
+		List<Long> ids = new ArrayList<Long>();
+		tweetWords = new ArrayList<HashSet<Integer>>();
+		LinkedList<Integer> words = new LinkedList<Integer>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(fileName));
+			String line = null;
+			while((line = reader.readLine()) != null && ids.size() < maxTweets){
+				String[] splitLine = line.split(", ");
+				if(splitLine.length == 1){ //Some tweets have no actual content once stopwords are removed
+					continue;
+				}
+				HashSet<Integer> wordIDs = new HashSet<Integer>();
+				for(String idString : splitLine[1].split(" ")){
+					wordIDs.add(Integer.parseInt(idString));
+					words.add(Integer.parseInt(idString));
+				}
+				ids.add(Long.parseLong(splitLine[0]));
+				tweetWords.add(wordIDs);
+			}
+			reader.close();
+		} catch (FileNotFoundException e) {
+			System.out.println("Could not find file to read.");
+			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		tweetIDs = new long[ids.size()];
+		for(int i=0;i<tweetIDs.length;i++){
+			tweetIDs[i] = ids.get(i);
+		}
+		Collections.shuffle(words); //We want our word list in random order
+		allWords = words;
+		System.out.println("Loaded " + tweetIDs.length + " tweets.");
+	}
+
+	//Returns the number of tweets replayed with timing, ie those after the preloaded ones
+	private int numTimedTweets(){
+		return tweetIDs.length - preloadTweets;
+	}
+
+	//Returns the gaps between timed tweets (ns) when replaying at a steady rate
+	public long[] steadySchedule(double tweetsPerSecond){
+		long[] gaps = new long[numTimedTweets()];
+		for(int i=1;i<gaps.length;i++){
+			gaps[i] = (long)(TimeUnit.SECONDS.toNanos(1) / tweetsPerSecond);
+		}
+		return gaps;
+	}
+
+	//Returns the recorded gaps between timed tweets (ns), taken from the creation times in their IDs and divided by speedup
+	//Tweets that were stored slightly out of order arrive back to back.
+	public long[] recordedSchedule(double speedup){
+		long[] gaps = new long[numTimedTweets()];
+		for(int i=1;i<gaps.length;i++){
+			long previousID = tweetIDs[preloadTweets + i - 1];
+			long gapMillis = Math.max(0L, TweetEncoder.getTimestamp(tweetIDs[preloadTweets + i]) - TweetEncoder.getTimestamp(previousID));
+			gaps[i] = (long)(TimeUnit.MILLISECONDS.toNanos(gapMillis) / speedup);
+		}
+		return gaps;
+	}
+
+	//Turns gaps between tweets into arrival times (ns after the replay starts)
+	//Gaps that start during [burstStart, burstStart + burstDuration) seconds are divided by burstMultiplier
+	public static long[] arrivalTimes(long[] gaps, double burstMultiplier, double burstStart, double burstDuration){
+		long burstStartNanos = (long)(burstStart * TimeUnit.SECONDS.toNanos(1));
+		long burstEndNanos = burstStartNanos + (long)(burstDuration * TimeUnit.SECONDS.toNanos(1));
+		long[] times = new long[gaps.length];
+		for(int i=1;i<times.length;i++){
+			boolean inBurst = times[i-1] >= burstStartNanos && times[i-1] < burstEndNanos;
+			times[i] = times[i-1] + (inBurst ? (long)(gaps[i] / burstMultiplier) : gaps[i]);
+		}
+		return times;
+	}
+
+	//Runs some tweets through a throwaway detector without timing them, so later replays don't pay for JIT compilation
+	public void warmUp(){
+		int numTweets = Math.min(WARM_UP_TWEETS, tweetIDs.length);
+		System.out.println("Warming up on " + numTweets + " tweets...");
+		FirstStoryDetector fsd = new FirstStoryDetector(NUM_TABLES, NUM_HYPERPLANES, MAX_TWEETS_PER_BUCKET, new LinkedList<Integer>(allWords));
+		for(int i=0;i<numTweets;i++){
+			fsd.processTweet(tweetIDs[i], tweetWords.get(i));
+		}
+	}
+
+	//Returns the arrival times that fall within the first trialSeconds of the replay (all of them if there is no limit)
+	private long[] limitToTrialLength(long[] arrivalTimes){
+		if(trialSeconds <= 0){
+			return arrivalTimes;
+		}
+		long limitNanos = (long)(trialSeconds * TimeUnit.SECONDS.toNanos(1));
+		int numTweets = 0;
+		while(numTweets < arrivalTimes.length && arrivalTimes[numTweets] < limitNanos){
+			numTweets++;
+		}
+		return Arrays.copyOf(arrivalTimes, Math.max(1, numTweets));
+	}
+
+	//Fills a fresh detector with the preloaded tweets, then replays the timed tweets into it on the given schedule
+	//(cut to the trial length) and measures latency
+	private TrialResult runTrial(long[] fullArrivalTimes){
+		final long[] arrivalTimes = limitToTrialLength(fullArrivalTimes);
+		FirstStoryDetector fsd = new FirstStoryDetector(NUM_TABLES, NUM_HYPERPLANES, MAX_TWEETS_PER_BUCKET, new LinkedList<Integer>(allWords)); //Hyperplane generation consumes the list
+		for(int i=0;i<preloadTweets;i++){ //Bring the index up to a realistic occupancy, untimed
+			fsd.processTweet(tweetIDs[i], tweetWords.get(i));
+		}
+		System.gc(); //Clean up the last trial before timing starts
+		final BlockingQueue<Arrival> queue = new ArrayBlockingQueue<Arrival>(queueCapacity);
+		final int[] maxBacklog = {0}; //Only written by the feeder
+		final long start = System.nanoTime();
+
+		//Feed tweets into the queue on schedule. If the detector falls behind, the queue fills and the feeder blocks.
+		Thread feeder = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					for(int i=0;i<arrivalTimes.length;i++){
+						long scheduledNanos = start + arrivalTimes[i];
+						waitUntil(scheduledNanos);
+						queue.put(new Arrival(i, scheduledNanos));
+						maxBacklog[0] = Math.max(maxBacklog[0], queue.size());
+					}
+					queue.put(new Arrival(-1, 0L));
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		feeder.start();
+
+		//Detect on this thread, as the only writer
+		LatencyHistogram latencies = new LatencyHistogram();
+		try {
+			Arrival arrival;
+			while((arrival = queue.take()).index >= 0){
+				fsd.processTweet(tweetIDs[preloadTweets + arrival.index], tweetWords.get(preloadTweets + arrival.index));
+				latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - arrival.scheduledNanos));
+			}
+			feeder.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		TrialResult result = new TrialResult();
+		double scheduledSeconds = (double)arrivalTimes[arrivalTimes.length - 1] / TimeUnit.SECONDS.toNanos(1);
+		result.offeredRate = scheduledSeconds > 0 ? arrivalTimes.length / scheduledSeconds : Double.POSITIVE_INFINITY;
+		result.achievedRate = arrivalTimes.length / ((double)elapsed / TimeUnit.SECONDS.toNanos(1));
+		result.maxBacklog = maxBacklog[0];
+		result.latencies = latencies;
+		//Sustainable if the detector kept pace, never filled the queue, and kept p99 latency within the limit
+		result.sustainable = result.achievedRate >= 0.95 * result.offeredRate
+				&& result.maxBacklog < queueCapacity
+				&& latencies.getValueAtPercentile(99) <= latencyLimitMillis * 1000;
+		return result;
+	}
+
+	//Sleeps, then spins, until System.nanoTime() reaches the given time
+	private static void waitUntil(long nanoTime){
+		long remaining;
+		while((remaining = nanoTime - System.nanoTime()) > 0){
+			if(remaining > TimeUnit.MICROSECONDS.toNanos(200)){
+				LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(100)); //Wake a little early, parking isn't precise
+			}
+			else{
+				Thread.yield();
+			}
+		}
+	}
+
+	//Prints the outcome of a trial
+	private static void printResult(TrialResult result){
+		System.out.println("Offered rate (tweets/sec): " + String.format("%.1f", result.offeredRate));
+		System.out.println("Achieved rate (tweets/sec): " + String.format("%.1f", result.achievedRate));
+		System.out.println("Max queue backlog: " + result.maxBacklog);
+		result.latencies.printPercentiles(TimeUnit.MICROSECONDS);
+		System.out.println(result.sustainable ? "Sustainable" : "NOT sustainable");
+		System.out.println();
+	}
+
+	//Raises the steady rate from startRate until the detector can't keep up, then narrows in on the highest sustainable rate.
+	//Returns 0 if no rate tried was sustainable.
+	public double findMaxSustainableRate(double startRate, double burstMultiplier, double burstStart, double burstDuration){
+		double sustainableRate = 0.0; //Highest rate known to be sustainable
+		double failedRate = 0.0; //Lowest rate known to be unsustainable (0 until one is found)
+		double rate = startRate;
+		//Double the rate until it fails
+		while(failedRate == 0.0){
+			System.out.println("Trying " + String.format("%.1f", rate) + " tweets/sec...");
+			TrialResult result = runTrial(arrivalTimes(steadySchedule(rate), burstMultiplier, burstStart, burstDuration));
+			printResult(result);
+			if(result.sustainable){
+				sustainableRate = rate;
+				rate *= 2;
+			}
+			else{
+				failedRate = rate;
+			}
+		}
+		//Then bisect between the last success and first failure
+		for(int i=0;i<BISECTION_STEPS;i++){
+			rate = (sustainableRate + failedRate) / 2;
+			System.out.println("Trying " + String.format("%.1f", rate) + " tweets/sec...");
+			TrialResult result = runTrial(arrivalTimes(steadySchedule(rate), burstMultiplier, burstStart, burstDuration));
+			printResult(result);
+			if(result.sustainable){
+				sustainableRate = rate;
+			}
+			else{
+				failedRate = rate;
+			}
+		}
+		return sustainableRate;
+	}
+
+	private static void printUsage(){
+		System.out.println("Usage: java ReplayDriver <cleanTweets_*.txt or encoded file> [--rate tweetsPerSec | --recorded [speedup]]");
+		System.out.println("       [--burst multiplier startSec durationSec] [--tweets count] [--preload count] [--trial-seconds seconds] [--queue capacity] [--latency-limit ms] [--find-max]");
+	}
+
+	public static void main(String[] args){
+		if(args.length < 1){
+			printUsage();
+			return;
+		}
+		double rate = 1000.0;
+		boolean recorded = false;
+		double speedup = 1.0;
+		double burstMultiplier = 1.0;
+		double burstStart = 0.0;
+		double burstDuration = 0.0;
+		int maxTweets = Integer.MAX_VALUE;
+		int queueCapacity = 10000;
+		double latencyLimitMillis = 100.0;
+		double trialSeconds = -1.0; //Negative until set, so --find-max can pick its own default
+		int preloadTweets = DEFAULT_PRELOAD_TWEETS;
+		boolean findMax = false;
+		try {
+			for(int i=1;i<args.length;i++){
+				if(args[i].equals("--rate")){
+					rate = Double.parseDouble(args[++i]);
+				}
+				else if(args[i].equals("--recorded")){
+					recorded = true;
+					if(i + 1 < args.length && ! args[i+1].startsWith("--")){
+						speedup = Double.parseDouble(args[++i]);
+					}
+				}
+				else if(args[i].equals("--burst")){
+					burstMultiplier = Double.parseDouble(args[++i]);
+					burstStart = Double.parseDouble(args[++i]);
+					burstDuration = Double.parseDouble(args[++i]);
+				}
+				else if(args[i].equals("--tweets")){
+					maxTweets = Integer.parseInt(args[++i]);
+				}
+				else if(args[i].equals("--preload")){
+					preloadTweets = Integer.parseInt(args[++i]);
+				}
+				else if(args[i].equals("--trial-seconds")){
+					trialSeconds = Double.parseDouble(args[++i]);
+				}
+				else if(args[i].equals("--queue")){
+					queueCapacity = Integer.parseInt(args[++i]);
+				}
+				else if(args[i].equals("--latency-limit")){
+					latencyLimitMillis = Double.parseDouble(args[++i]);
+				}
+				else if(args[i].equals("--find-max")){
+					findMax = true;
+				}
+				else{
+					System.out.println("Unknown option " + args[i]);
+					printUsage();
+					return;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			printUsage();
+			return;
+		}
+		if(rate <= 0 || speedup <= 0 || burstMultiplier <= 0 || queueCapacity <= 0){
+			System.out.println("Rates, speedup, burst multiplier and queue capacity must be positive.");
+			return;
+		}
+		if(preloadTweets < 0){
+			System.out.println("--preload can't be negative.");
+			return;
+		}
+		if(findMax && recorded){
+			System.out.println("--find-max searches steady rates and can't be combined with --recorded.");
+			return;
+		}
+		if(trialSeconds < 0){
+			trialSeconds = findMax ? FIND_MAX_TRIAL_SECONDS : 0.0;
+		}
+
+		ReplayDriver driver = new ReplayDriver(args[0], maxTweets);
+		if(driver.tweetIDs.length == 0){
+			System.out.println("No tweets to replay!");
+			return;
+		}
+		if(driver.tweetIDs.length <= preloadTweets){
+			System.out.println("Loaded " + driver.tweetIDs.length + " tweets, which leaves none to time after preloading " + preloadTweets + ". Lower --preload or raise --tweets.");
+			return;
+		}
+		driver.preloadTweets = preloadTweets;
+		driver.queueCapacity = queueCapacity;
+		driver.latencyLimitMillis = latencyLimitMillis;
+		driver.trialSeconds = trialSeconds;
+		driver.warmUp();
+		if(findMax){
+			double maxRate = driver.findMaxSustainableRate(rate, burstMultiplier, burstStart, burstDuration);
+			System.out.println("Highest sustainable rate (tweets/sec): " + String.format("%.1f", maxRate));
+		}
+		else{
+			long[] gaps = recorded ? driver.recordedSchedule(speedup) : driver.steadySchedule(rate);
+			printResult(driver.runTrial(arrivalTimes(gaps, burstMultiplier, burstStart, burstDuration)));
+		}
+		System.out.println("Done");
+	}
+}
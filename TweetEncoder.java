@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -81,6 +82,7 @@ public class TweetEncoder {
 				}
 			}
 			reader.close();
+			writer.close();
 		} catch (FileNotFoundException e) {
 			System.out.println("Could not find file to read.");
 			e.printStackTrace();
@@ -90,6 +92,28 @@ public class TweetEncoder {
 		}
 	}
 	
+	//Returns the creation time (ms since epoch) of a tweet, which Twitter embeds in the upper bits of every tweet ID it has issued since November 2010
+	public static long getTimestamp(long tweetID){
+		return (tweetID >> 22) + 1288834974657L; //Twitter's ID epoch
+	}
+	
+	//Encodes the words of some query text using the word IDs assigned so far, without assigning new ones.
+	//Words never seen during encoding are dropped since no tweet in the index can contain them.
+	//Only reads the encoder, so it is safe to call from many threads once encode() has finished.
+	public HashSet<Integer> encodeQuery(String text){
+		HashSet<Integer> words = new HashSet<Integer>();
+		for(String word : text.split(" ")){
+			if(word.startsWith("@") || word.startsWith("http")){ //ignore usernames and hyperlinks
+				continue;
+			}
+			Integer wordID = wordIDs.get(word);
+			if(wordID != null){
+				words.add(wordID);
+			}
+		}
+		return words;
+	}
+	
 	//Tells the writer to direct output to a new file with a given name.
 	private void startNewFile(String newFileName){
 		if(writer != null){